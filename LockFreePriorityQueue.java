@@ -1,10 +1,19 @@
 import javafx.util.Pair;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicStampedReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A lock free priority queue
@@ -207,6 +216,25 @@ public class LockFreePriorityQueue {
 
     // Pop off the top priority in the queue
     public Integer deleteMin(){
+        Node node = deleteMinNode();
+        return node == null ? null : node.value;
+    }
+
+    // Pop off the top priority in the queue, returning the key along with the value
+    public Map.Entry<Integer, Integer> deleteMinEntry(){
+        Node node = deleteMinNode();
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+    }
+
+    // Look at the top priority without removing it, null if the queue is empty
+    // Only a snapshot - the node can be deleted by another thread right after
+    public Map.Entry<Integer, Integer> peekMin(){
+        Node node = new BottomLevelSpliterator().advance();
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+    }
+
+    // Remove the first unmarked node on the lowest level, null if the queue is empty
+    private Node deleteMinNode(){
         Node prev = head;
         Node node1 = new Node(0, 0, 0); Node node2;
         Integer valueRef;
@@ -251,7 +279,14 @@ public class LockFreePriorityQueue {
             retry = false;
         }
 
-        // Mark all of the next pointers
+        markNext(node1);
+        unlink(node1);
+        return node1;
+    }
+
+    // Mark all of the next pointers of a node claimed for deletion
+    private void markNext(Node node1){
+        Node node2;
         boolean node2Marked;
         for(int i = 0; i <= node1.level-1; i++){
             // Keep trying until you mark next ptr
@@ -260,15 +295,121 @@ public class LockFreePriorityQueue {
                 node2Marked = node1.next[i].isMarked();
             }while(!node2Marked && !node1.next[i].compareAndSet(node2, node2, false, true));
         }
+    }
 
-        prev = head;
-
-        // Remove the nodes starting from the top
+    // Remove a claimed node starting from the top
+    private void unlink(Node node1){
         for(int i = node1.level-1; i >= 0; i--){
-            removeNode(node1, prev, i);
+            removeNode(node1, head, i);
+        }
+    }
+
+    // Pop off up to n of the top priorities in the queue, in priority order
+    // Stops early (returning fewer than n values) once the queue is empty
+    public List<Integer> deleteMin(int n){
+        List<Node> nodes = deleteMinNodes(n);
+        List<Integer> values = new ArrayList<>(nodes.size());
+        for(Node node : nodes) values.add(node.value);
+        return values;
+    }
+
+    // Same as deleteMin(n), returning the keys along with the values
+    public List<Map.Entry<Integer, Integer>> deleteMinEntries(int n){
+        List<Node> nodes = deleteMinNodes(n);
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(nodes.size());
+        for(Node node : nodes) entries.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+        return entries;
+    }
+
+    // Claim up to n consecutive unmarked nodes on the lowest level in one pass, then unlink them together
+    // A node inserted in front of the pass while it runs is only picked up if the pass has to rescan from the head
+    // - the same weak ordering deleteMin gives between concurrent insert and deleteMin
+    // The claimed nodes are sorted by key, a rescan can claim a smaller key after larger ones
+    private List<Node> deleteMinNodes(int n){
+        List<Node> claimed = new ArrayList<>(Math.min(Math.max(n, 0), 64));
+        if(n <= 0) return claimed;
+
+        // node.prev is left null on claimed nodes, helpDelete then searches for the previous node itself
+        Node node1 = readNext(head, 0).node;
+        while(claimed.size() < n && node1 != tail){
+            // Claim the node by marking it, like deleteMin
+            if(!node1.marked.get() && node1.marked.compareAndSet(false, true)) claimed.add(node1);
+
+            Node next = node1.next[0].getReference();
+            // Node was unlinked by a helper - rescan from the head, claimed nodes are marked so they get skipped
+            if(next == null) next = readNext(head, 0).node;
+            node1 = next;
+        }
+        claimed.sort((a, b) -> Integer.compare(a.key, b.key));
+
+        // Mark every claimed node before unlinking any, so helpers see the whole batch as deleted
+        for(Node node : claimed) markNext(node);
+        for(Node node : claimed) unlink(node);
+
+        return claimed;
+    }
+
+    // True if there is no unmarked node on the lowest level
+    // Only a snapshot - concurrent inserts/deletes can change the answer right away
+    public boolean isEmpty(){
+        return new BottomLevelSpliterator().advance() == null;
+    }
+
+    // Weakly consistent spliterator over the values on the lowest level, in priority order
+    // Never blocks or helps writers, nodes marked for deletion are skipped
+    public Spliterator<Integer> spliterator(){
+        return new BottomLevelSpliterator();
+    }
+
+    // Read only stream over the queue for monitoring, see spliterator()
+    public Stream<Integer> stream(){
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // Walks next[0] pointers from the head
+    // If the current node gets unlinked underneath us (next pointer nulled by removeNode),
+    // restart from the head and skip past the last key seen - keys are unique so nothing is repeated
+    private class BottomLevelSpliterator extends Spliterators.AbstractSpliterator<Integer>{
+        Node current = head;
+        int lastKey;
+        boolean started = false;    // No key seen yet - lastKey is not valid
+
+        BottomLevelSpliterator(){
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.CONCURRENT);
         }
 
-        return node1.value;
+        @Override
+        public boolean tryAdvance(Consumer<? super Integer> action){
+            Node node = advance();
+            if(node == null) return false;
+            action.accept(node.value);
+            return true;
+        }
+
+        // Move to the next unmarked node, null once the tail is reached
+        Node advance(){
+            if(current == tail) return null;
+
+            while(true){
+                Node next = current.next[0].getReference();
+
+                // Current node was removed - rescan from the head
+                if(next == null){
+                    current = head;
+                    continue;
+                }
+
+                current = next;
+                if(current == tail) return null;
+
+                // Already seen or marked for deletion - skip
+                if((started && current.key <= lastKey) || current.marked.get()) continue;
+
+                lastKey = current.key;
+                started = true;
+                return current;
+            }
+        }
     }
 
     // Node class for nodes in the skiplist
@@ -0,0 +1,227 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Flow.Publisher that drains a lock free priority queue in priority order
+ * Every subscriber competes for the same queue, so each value is delivered to exactly one subscriber
+ * Values are only removed from the queue when a subscriber has outstanding demand (request(n)),
+ * and they are removed in batches of at most BATCH_SIZE with deleteMinEntries(n)
+ * If onNext throws, the part of the batch that was not delivered is inserted back into the queue,
+ * a value whose key was inserted again in the meantime can't go back and is reported as suppressed on the error
+ * Inserts should go through this publisher (or be followed by signal()) so that waiting subscribers get woken up
+ * Subscribers are only completed after close() once no insert through the publisher is still running,
+ * no other subscriber holds a batch that may go back into the queue, and the queue is empty
+ */
+public class PriorityQueuePublisher implements Flow.Publisher<Integer> {
+
+    // Maximum number of values claimed from the queue in one deleteMinEntries pass
+    static final int BATCH_SIZE = 64;
+
+    private final LockFreePriorityQueue queue;
+    private final Executor executor;
+    private final CopyOnWriteArrayList<QueueSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    // Inserts that got past the closed check, plus batches a subscriber holds until they are delivered or put back
+    private final AtomicInteger inserting = new AtomicInteger();
+    private volatile boolean closed;
+
+    public PriorityQueuePublisher(LockFreePriorityQueue queue){
+        this(queue, ForkJoinPool.commonPool());
+    }
+
+    // Subscribers are signalled from tasks run on the executor
+    public PriorityQueuePublisher(LockFreePriorityQueue queue, Executor executor){
+        if(queue == null || executor == null) throw new NullPointerException();
+        this.queue = queue;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Integer> subscriber){
+        if(subscriber == null) throw new NullPointerException();
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+
+        // Rules 1.3/1.9 - nothing may be signalled before onSubscribe returns
+        // The subscription starts with wip held, so request(n) inside onSubscribe only records the demand
+        subscriber.onSubscribe(subscription);
+        if(subscription.cancelled) return;
+        subscriptions.add(subscription);
+
+        // Registered now, so later signals reach it - drain once for anything that came before
+        subscription.resubmit();
+    }
+
+    // Insert into the underlying queue and wake up subscribers with outstanding demand
+    // Counted while running so a racing close() can't complete subscribers before the value lands
+    public boolean insert(Integer value, int key){
+        inserting.incrementAndGet();
+        if(closed){
+            inserting.decrementAndGet();
+            signal();   // A drain may have skipped completing while this insert was counted
+            throw new IllegalStateException("Publisher is closed");
+        }
+
+        boolean inserted;
+        try{
+            inserted = queue.insert(value, key);
+        }finally{
+            inserting.decrementAndGet();
+        }
+        if(inserted || closed) signal();
+        return inserted;
+    }
+
+    // Wake up subscribers after inserting into the queue directly
+    public void signal(){
+        for(QueueSubscription subscription : subscriptions){
+            subscription.drain();
+        }
+    }
+
+    // No more inserts - subscribers are completed once the queue has been drained
+    public void close(){
+        closed = true;
+        signal();
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    public int getNumberOfSubscribers(){
+        return subscriptions.size();
+    }
+
+    // Subscription for a single subscriber
+    // drain() is serialized with a work in progress counter so only one task delivers to the subscriber at a time
+    private class QueueSubscription implements Flow.Subscription {
+        final Flow.Subscriber<? super Integer> subscriber;
+        final AtomicLong requested = new AtomicLong();
+        final AtomicInteger wip = new AtomicInteger(1);    // Held by subscribe() until onSubscribe returns
+        final AtomicBoolean done = new AtomicBoolean(false);
+        volatile boolean cancelled;
+        volatile Throwable error;   // Set by a bad request(n), delivered from the drain loop
+
+        QueueSubscription(Flow.Subscriber<? super Integer> subscriber){
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n){
+            // Rule 3.9 - non positive requests signal an IllegalArgumentException
+            if(n <= 0){
+                error = new IllegalArgumentException("non-positive subscription request: " + n);
+            }else{
+                // Add to the demand, capping at Long.MAX_VALUE (unbounded)
+                long current, next;
+                do{
+                    current = requested.get();
+                    if(current == Long.MAX_VALUE) break;
+                    next = current + n;
+                    if(next < 0) next = Long.MAX_VALUE;
+                }while(!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void drain(){
+            if(wip.getAndIncrement() != 0) return;
+            resubmit();
+        }
+
+        // Delivers at most one batch per run, then re-submits itself if there is more to do
+        // so that subscribers sharing an executor take turns on the queue
+        private void drainLoop(){
+            int missed = 1;
+            while(true){
+                if(cancelled || done.get()) return;
+                if(error != null){
+                    terminate(error);
+                    return;
+                }
+
+                long demand = requested.get();
+
+                if(demand > 0){
+                    int batch = (int)Math.min(demand, BATCH_SIZE);
+
+                    // Count the batch like an insert while it is held, it may go back into the queue
+                    inserting.incrementAndGet();
+                    List<Map.Entry<Integer, Integer>> values = queue.deleteMinEntries(batch);
+
+                    // Deliver the whole batch even if cancelled part way, the values are already off the queue
+                    for(int i = 0; i < values.size(); i++){
+                        try{
+                            subscriber.onNext(values.get(i).getValue());
+                        }catch (Throwable t){
+                            // Hand the undelivered rest of the batch to the other subscribers
+                            for(Map.Entry<Integer, Integer> entry : values.subList(i + 1, values.size())){
+                                if(!queue.insert(entry.getValue(), entry.getKey())){
+                                    t.addSuppressed(new IllegalStateException("value " + entry.getValue() + " dropped, key " + entry.getKey() + " was inserted again"));
+                                }
+                            }
+                            inserting.decrementAndGet();
+                            terminate(t);
+                            signal();
+                            return;
+                        }
+                    }
+                    inserting.decrementAndGet();
+
+                    // Another subscriber may have skipped completing while the batch was held
+                    if(closed) signal();
+
+                    if(demand != Long.MAX_VALUE) requested.addAndGet(-values.size());
+
+                    // Full batch - there may be more, give other subscribers a turn first
+                    if(values.size() == batch && !cancelled){
+                        resubmit();
+                        return;
+                    }
+                }
+
+                // Closed, no insert still running and nothing left - complete the subscriber
+                // inserting has to be read before the queue, an insert that finishes in between signals again
+                if(closed && !cancelled && inserting.get() == 0 && queue.isEmpty()){
+                    if(done.compareAndSet(false, true)){
+                        subscriptions.remove(this);
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if(missed == 0) return;
+            }
+        }
+
+        // Schedule the drain loop while holding the work in progress counter
+        // If the executor rejects the task nothing can be delivered anymore
+        private void resubmit(){
+            try{
+                executor.execute(this::drainLoop);
+            }catch (RuntimeException e){
+                terminate(e);
+            }
+        }
+
+        // Cancel the subscription and signal the error once
+        private void terminate(Throwable t){
+            cancel();
+            if(done.compareAndSet(false, true)) subscriber.onError(t);
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+/**
+ * Binary protocol spoken by ShardedQueueServer and ShardedQueueClient
+ * Every request and response is a frame: [int length][byte opcode][payload], big endian,
+ * where length counts the opcode and the payload (not the length field itself)
+ * Requests on a connection can be pipelined - responses come back in the same order
+ *
+ * INSERT        request: int key, int value                  response: byte inserted (0 = duplicate key)
+ * INSERT_BATCH  request: int count, count * (int key, int value)   response: int number inserted
+ * DELETE_MIN    request: int n                                response: int count, count * (int key, int value)
+ * PEEK          request: (empty)                              response: byte found, then int key, int value if found
+ * ERROR         response only, sent before the server closes a connection that broke the protocol
+ */
+public final class QueueProtocol {
+
+    static final byte INSERT = 1;
+    static final byte INSERT_BATCH = 2;
+    static final byte DELETE_MIN = 3;
+    static final byte PEEK = 4;
+    static final byte ERROR = -1;
+
+    // Largest frame either side will accept (length field value)
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Most pairs in a single INSERT_BATCH or DELETE_MIN, keeps every frame under MAX_FRAME_LENGTH
+    static final int MAX_BATCH = (MAX_FRAME_LENGTH - 5) / 8;
+
+    private QueueProtocol(){}
+
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback benchmark for the sharded priority queue server
+ * numClients - number of client threads, each with its own connection
+ * numBatches - how many insert batches (and then deleteMin batches) each client sends
+ * batchSize - number of key/value pairs per batch
+ * pipelineDepth - how many requests a client sends before reading the responses
+ * Prints the insert and deleteMin throughput followed by a boolean variable saying if everything inserted was removed again
+ * Ordering, the error path and backpressure are checked by TestMain.serverTest
+ */
+public class QueueServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numShards = 4; int numClients = 4;
+        int numBatches = 2000; int batchSize = 100; int pipelineDepth = 16;
+
+        ShardedQueueServer server = new ShardedQueueServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), numShards);
+        Thread serverThread = new Thread(server, "queue-server");
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+        AtomicLong inserted = new AtomicLong(), removed = new AtomicLong();
+
+        // Insert phase
+        long start = System.nanoTime();
+        runClients(numClients, new ClientTask() {
+            @Override
+            public void run(ShardedQueueClient client, Random r) throws IOException {
+                int[] keys = new int[batchSize], values = new int[batchSize];
+                int pending = 0;
+                for(int i = 0; i < numBatches; i++){
+                    for(int j = 0; j < batchSize; j++){
+                        keys[j] = r.nextInt(1 << 30);
+                        values[j] = keys[j];
+                    }
+                    client.sendInsertBatch(keys, values);
+                    if(++pending == pipelineDepth){
+                        client.flush();
+                        for(; pending > 0; pending--) inserted.addAndGet(client.readInsertBatch());
+                    }
+                }
+                client.flush();
+                for(; pending > 0; pending--) inserted.addAndGet(client.readInsertBatch());
+            }
+        }, address);
+        report("INSERT", inserted.get(), start);
+
+        // DeleteMin phase - keep going until the server runs dry
+        start = System.nanoTime();
+        runClients(numClients, new ClientTask() {
+            @Override
+            public void run(ShardedQueueClient client, Random r) throws IOException {
+                boolean empty = false;
+                while(!empty){
+                    for(int i = 0; i < pipelineDepth; i++) client.sendDeleteMin(batchSize);
+                    client.flush();
+                    for(int i = 0; i < pipelineDepth; i++){
+                        List<Map.Entry<Integer, Integer>> entries = client.readDeleteMin();
+                        removed.addAndGet(entries.size());
+                        if(entries.size() < batchSize) empty = true;
+                    }
+                }
+            }
+        }, address);
+        report("DELETE_MIN", removed.get(), start);
+
+        server.close();
+        serverThread.join();
+
+        System.out.println("ALL_REMOVED: " + (inserted.get() == removed.get()));
+        System.out.println("VALID_STATE: " + server.verify());
+    }
+
+    // Work done by a single client thread over its own connection
+    private interface ClientTask{
+        void run(ShardedQueueClient client, Random r) throws IOException;
+    }
+
+    private static void runClients(int numClients, ClientTask task, InetSocketAddress address){
+        ExecutorService clients = Executors.newFixedThreadPool(numClients);
+        for(int i = 0; i < numClients; i++){
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try(ShardedQueueClient client = new ShardedQueueClient(address)){
+                        task.run(client, new Random());
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        try{
+            clients.shutdown();
+            clients.awaitTermination(60, TimeUnit.SECONDS);
+        }catch (InterruptedException e){}
+    }
+
+    private static void report(String name, long ops, long start){
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d ops in %.3f s (%.0f ops/s)%n", name, ops, seconds, ops / seconds);
+    }
+
+}
@@ -0,0 +1,141 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocking client for ShardedQueueServer, see QueueProtocol for the wire format
+ * The insert/insertBatch/deleteMin/peek methods do a full round trip
+ * To pipeline, call the send* methods several times, flush(), then call the matching read* methods in the same order
+ * Not thread safe - use one client per thread
+ */
+public class ShardedQueueClient implements Closeable {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    public ShardedQueueClient(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+    }
+
+    public boolean insert(int key, int value) throws IOException {
+        sendInsert(key, value);
+        flush();
+        return readInsert();
+    }
+
+    // Returns how many of the pairs were inserted (duplicate keys are skipped)
+    public int insertBatch(int[] keys, int[] values) throws IOException {
+        sendInsertBatch(keys, values);
+        flush();
+        return readInsertBatch();
+    }
+
+    // Up to n key/value pairs in priority order, fewer if the server ran out
+    public List<Map.Entry<Integer, Integer>> deleteMin(int n) throws IOException {
+        sendDeleteMin(n);
+        flush();
+        return readDeleteMin();
+    }
+
+    // Smallest key/value pair without removing it, null if the server is empty
+    public Map.Entry<Integer, Integer> peek() throws IOException {
+        sendPeek();
+        flush();
+        return readPeek();
+    }
+
+    public void sendInsert(int key, int value) throws IOException {
+        out.writeInt(9);
+        out.writeByte(QueueProtocol.INSERT);
+        out.writeInt(key);
+        out.writeInt(value);
+    }
+
+    public void sendInsertBatch(int[] keys, int[] values) throws IOException {
+        if(keys.length != values.length) throw new IllegalArgumentException("keys and values differ in length");
+        if(keys.length > QueueProtocol.MAX_BATCH) throw new IllegalArgumentException("batch larger than " + QueueProtocol.MAX_BATCH);
+        out.writeInt(1 + 4 + keys.length * 8);
+        out.writeByte(QueueProtocol.INSERT_BATCH);
+        out.writeInt(keys.length);
+        for(int i = 0; i < keys.length; i++){
+            out.writeInt(keys[i]);
+            out.writeInt(values[i]);
+        }
+    }
+
+    public void sendDeleteMin(int n) throws IOException {
+        if(n < 0 || n > QueueProtocol.MAX_BATCH) throw new IllegalArgumentException("n must be between 0 and " + QueueProtocol.MAX_BATCH);
+        out.writeInt(5);
+        out.writeByte(QueueProtocol.DELETE_MIN);
+        out.writeInt(n);
+    }
+
+    public void sendPeek() throws IOException {
+        out.writeInt(1);
+        out.writeByte(QueueProtocol.PEEK);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public boolean readInsert() throws IOException {
+        readHeader(QueueProtocol.INSERT);
+        return in.readByte() != 0;
+    }
+
+    public int readInsertBatch() throws IOException {
+        readHeader(QueueProtocol.INSERT_BATCH);
+        return in.readInt();
+    }
+
+    public List<Map.Entry<Integer, Integer>> readDeleteMin() throws IOException {
+        readHeader(QueueProtocol.DELETE_MIN);
+        int count = in.readInt();
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            int key = in.readInt();
+            int value = in.readInt();
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return entries;
+    }
+
+    public Map.Entry<Integer, Integer> readPeek() throws IOException {
+        readHeader(QueueProtocol.PEEK);
+        if(in.readByte() == 0) return null;
+        int key = in.readInt();
+        int value = in.readInt();
+        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
+
+    // Read the length and opcode of the next response, it has to answer the expected request
+    private void readHeader(byte expected) throws IOException {
+        int length = in.readInt();
+        byte op = in.readByte();
+        if(op == QueueProtocol.ERROR) throw new IOException("Server rejected the request");
+        if(op != expected || length < 1 || length > QueueProtocol.MAX_FRAME_LENGTH){
+            throw new IOException("Unexpected response " + op + " (length " + length + "), expected " + expected);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
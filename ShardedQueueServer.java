@@ -0,0 +1,411 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a set of lock free priority queues over a non blocking NIO socket, see QueueProtocol for the wire format
+ * A single selector thread (run()) only does the socket IO, the requests themselves are answered on a pool of workers
+ * A connection is handed to one worker at a time, so its responses stay in request order,
+ * while different connections work on the shards concurrently
+ * Keys are sharded across the queues by key, deleteMin/peek merge the shards by taking the smallest head
+ * The merge is not atomic across shards - a concurrent insert into another shard can be overtaken,
+ * the same weak ordering a single queue gives between concurrent insert and deleteMin
+ */
+public class ShardedQueueServer implements Runnable, Closeable {
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Stop answering (and reading) a connection while this many response bytes are waiting to be written
+    // A single response can still take it over the limit by up to one frame
+    static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final LockFreePriorityQueue[] shards;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();   // Handed back by workers
+    private volatile boolean running = true;
+
+    // One worker per shard
+    public ShardedQueueServer(InetSocketAddress address, int numShards) throws IOException {
+        this(address, numShards, numShards);
+    }
+
+    public ShardedQueueServer(InetSocketAddress address, int numShards, int numWorkers) throws IOException {
+        if(numShards < 1) throw new IllegalArgumentException("numShards must be at least 1: " + numShards);
+        if(numWorkers < 1) throw new IllegalArgumentException("numWorkers must be at least 1: " + numWorkers);
+        shards = new LockFreePriorityQueue[numShards];
+        for(int i = 0; i < numShards; i++){
+            shards[i] = new LockFreePriorityQueue();
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try{
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }catch (IOException e){
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        workers = Executors.newFixedThreadPool(numWorkers);
+    }
+
+    // Port actually bound, useful when started on port 0
+    public int getPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Selector loop - returns once close() is called
+    @Override
+    public void run(){
+        try{
+            while(running){
+                selector.select();
+
+                SelectionKey done;
+                while((done = resumed.poll()) != null) resume(done);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()){
+                        accept();
+                        continue;
+                    }
+                    try{
+                        if(key.isReadable()) read(key);
+                        if(key.isValid() && key.isWritable()) write(key);
+                    }catch (IOException e){
+                        // Connection dropped - only this client is affected
+                        closeConnection(key);
+                    }
+                }
+            }
+        }catch (IOException e){
+            throw new RuntimeException(e);
+        }finally{
+            workers.shutdown();
+            for(SelectionKey key : selector.keys()){
+                closeConnection(key);
+            }
+            try{
+                selector.close();
+            }catch (IOException e){}
+        }
+    }
+
+    // Stop the selector loop, closing every connection and shutting down the workers
+    @Override
+    public void close(){
+        running = false;
+        selector.wakeup();
+    }
+
+    // Insert into the shard owning the key, the sentinel keys are rejected
+    boolean insert(int key, int value){
+        if(key == Integer.MIN_VALUE || key == Integer.MAX_VALUE) return false;
+        return shards[Math.floorMod(key, shards.length)].insert(value, key);
+    }
+
+    // Remove up to n of the smallest keys across all shards, in priority order
+    // Every shard head is peeked once, after that only the shard that was just removed from is peeked again
+    // Once every known head is gone the shards are peeked again, so a short result means they were all empty
+    // Other connections removing from the same shards can make a cached head stale, so the batch is sorted at the end
+    List<Map.Entry<Integer, Integer>> deleteMin(int n){
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(Math.min(n, 64));
+        int[] headKeys = new int[shards.length];
+        boolean[] hasHead = new boolean[shards.length];
+        boolean refreshed = false;
+        for(int i = 0; i < shards.length; i++) peekHead(i, headKeys, hasHead);
+
+        while(entries.size() < n){
+            int best = -1;
+            for(int i = 0; i < shards.length; i++){
+                if(hasHead[i] && (best == -1 || headKeys[i] < headKeys[best])) best = i;
+            }
+
+            // No known heads left - look at every shard once more before giving up
+            if(best == -1){
+                if(refreshed) break;
+                refreshed = true;
+                for(int i = 0; i < shards.length; i++) peekHead(i, headKeys, hasHead);
+                continue;
+            }
+
+            Map.Entry<Integer, Integer> entry = shards[best].deleteMinEntry();
+            if(entry != null){
+                entries.add(entry);
+                refreshed = false;
+            }
+            peekHead(best, headKeys, hasHead);
+        }
+
+        entries.sort(Map.Entry.comparingByKey());
+        return entries;
+    }
+
+    private void peekHead(int shard, int[] headKeys, boolean[] hasHead){
+        Map.Entry<Integer, Integer> entry = shards[shard].peekMin();
+        hasHead[shard] = entry != null;
+        if(entry != null) headKeys[shard] = entry.getKey();
+    }
+
+    // Smallest head across all shards without removing it
+    Map.Entry<Integer, Integer> peekMin(){
+        Map.Entry<Integer, Integer> best = null;
+        for(LockFreePriorityQueue shard : shards){
+            Map.Entry<Integer, Integer> entry = shard.peekMin();
+            if(entry != null && (best == null || entry.getKey() < best.getKey())) best = entry;
+        }
+        return best;
+    }
+
+    // Every shard should be a valid skiplist
+    public boolean verify(){
+        for(LockFreePriorityQueue shard : shards){
+            if(!shard.verify()) return false;
+        }
+        return true;
+    }
+
+    // A failed accept only drops that client, the server channel stays registered
+    private void accept(){
+        SocketChannel channel;
+        try{
+            channel = serverChannel.accept();
+        }catch (IOException e){
+            // e.g. out of file descriptors - try again on the next select
+            return;
+        }
+        if(channel == null) return;
+
+        try{
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }catch (IOException e){
+            try{
+                channel.close();
+            }catch (IOException e2){}
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        if(channel.read(connection.in) < 0){
+            closeConnection(key);
+            return;
+        }
+        service(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        service(key);
+    }
+
+    // Worker finished with a connection - the selector thread owns its buffers again
+    private void resume(SelectionKey key){
+        ((Connection) key.attachment()).busy = false;
+        if(!key.isValid()) return;
+        try{
+            service(key);
+        }catch (IOException e){
+            closeConnection(key);
+        }
+    }
+
+    // Selector thread only - write pending responses, then either hand buffered frames to a worker
+    // or wait for the socket (OP_WRITE while responses are pending, OP_READ while under MAX_PENDING_OUTPUT)
+    private void service(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        // A worker owns the buffers - readyOps from the same select can still ask for a write, leave it to resume()
+        if(connection.busy) return;
+
+        connection.out.flip();
+        channel.write(connection.out);
+        connection.out.compact();
+
+        // Protocol error - the ERROR frame got its one chance to go out
+        if(connection.failed){
+            closeConnection(key);
+            return;
+        }
+
+        int pending = connection.out.position();
+        if(pending < MAX_PENDING_OUTPUT && connection.hasFrame()){
+            // Hand both buffers to a worker, the selector leaves the connection alone until resume()
+            connection.busy = true;
+            key.interestOps(0);
+            workers.execute(() -> {
+                process(connection);
+                resumed.add(key);
+                selector.wakeup();
+            });
+            return;
+        }
+
+        connection.growInput();
+        int ops = pending > 0 ? SelectionKey.OP_WRITE : 0;
+        if(pending < MAX_PENDING_OUTPUT) ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    // Worker thread - answer buffered frames in order until they run out or too much output is pending
+    // Frames left over stay in the input buffer and are handed out again once the output drains
+    private void process(Connection connection){
+        ByteBuffer in = connection.in;
+        in.flip();
+        while(in.remaining() >= 4 && connection.out.position() < MAX_PENDING_OUTPUT){
+            int length = in.getInt(in.position());
+            if(length < 1 || length > QueueProtocol.MAX_FRAME_LENGTH){
+                protocolError(connection);
+                break;
+            }
+            if(in.remaining() < 4 + length) break;
+
+            in.getInt();
+            int end = in.position() + length;
+            ByteBuffer frame = in.slice();
+            frame.limit(length);
+            in.position(end);
+            if(!handle(frame, connection)){
+                protocolError(connection);
+                break;
+            }
+        }
+        in.compact();
+    }
+
+    // Worker thread - answer a single request frame, false if the frame is malformed
+    private boolean handle(ByteBuffer frame, Connection connection){
+        try{
+            byte op = frame.get();
+            switch (op){
+                case QueueProtocol.INSERT: {
+                    int key = frame.getInt();
+                    int value = frame.getInt();
+                    if(frame.hasRemaining()) return false;
+                    boolean inserted = insert(key, value);
+                    connection.response(QueueProtocol.INSERT, 1).put((byte) (inserted ? 1 : 0));
+                    return true;
+                }
+                case QueueProtocol.INSERT_BATCH: {
+                    int count = frame.getInt();
+                    if(count < 0 || count > QueueProtocol.MAX_BATCH || frame.remaining() != count * 8) return false;
+                    int inserted = 0;
+                    for(int i = 0; i < count; i++){
+                        int key = frame.getInt();
+                        int value = frame.getInt();
+                        if(insert(key, value)) inserted++;
+                    }
+                    connection.response(QueueProtocol.INSERT_BATCH, 4).putInt(inserted);
+                    return true;
+                }
+                case QueueProtocol.DELETE_MIN: {
+                    int n = frame.getInt();
+                    if(n < 0 || n > QueueProtocol.MAX_BATCH || frame.hasRemaining()) return false;
+                    List<Map.Entry<Integer, Integer>> entries = deleteMin(n);
+                    ByteBuffer out = connection.response(QueueProtocol.DELETE_MIN, 4 + entries.size() * 8);
+                    out.putInt(entries.size());
+                    for(Map.Entry<Integer, Integer> entry : entries){
+                        out.putInt(entry.getKey()).putInt(entry.getValue());
+                    }
+                    return true;
+                }
+                case QueueProtocol.PEEK: {
+                    if(frame.hasRemaining()) return false;
+                    Map.Entry<Integer, Integer> entry = peekMin();
+                    if(entry == null){
+                        connection.response(QueueProtocol.PEEK, 1).put((byte) 0);
+                    }else{
+                        connection.response(QueueProtocol.PEEK, 9).put((byte) 1).putInt(entry.getKey()).putInt(entry.getValue());
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }catch (BufferUnderflowException e){
+            return false;
+        }
+    }
+
+    // Queue an ERROR frame, the connection is closed once it has been written
+    private void protocolError(Connection connection){
+        connection.response(QueueProtocol.ERROR, 0);
+        connection.failed = true;
+    }
+
+    private void closeConnection(SelectionKey key){
+        key.cancel();
+        try{
+            key.channel().close();
+        }catch (IOException e){}
+    }
+
+    // Per connection buffers, both kept in write mode
+    // Owned by the selector thread, except while busy when a single worker owns them
+    private static class Connection{
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        boolean busy;
+        boolean failed;
+
+        // A complete (or malformed) frame is waiting in the input buffer
+        boolean hasFrame(){
+            if(in.position() < 4) return false;
+            int length = in.getInt(0);
+            return length < 1 || length > QueueProtocol.MAX_FRAME_LENGTH || in.position() >= 4 + length;
+        }
+
+        // Partial frame bigger than the input buffer - grow it so the rest can be read
+        void growInput(){
+            if(in.position() < 4) return;
+            int length = in.getInt(0);
+            // Malformed length - never allocate for it, a worker answers with ERROR once output drains
+            if(length < 1 || length > QueueProtocol.MAX_FRAME_LENGTH) return;
+            int needed = 4 + length;
+            if(needed <= in.capacity()) return;
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        // Start a response frame with room for payloadLength bytes, returns out positioned at the payload
+        ByteBuffer response(byte op, int payloadLength){
+            int needed = 4 + 1 + payloadLength;
+            if(out.remaining() < needed){
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            return out.putInt(1 + payloadLength).put(op);
+        }
+    }
+
+}
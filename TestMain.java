@@ -1,7 +1,17 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main program for testing the fine grained and lock based priority queues
@@ -9,7 +19,8 @@ import java.util.concurrent.TimeUnit;
  * numInsert - how many elements each thread will add
  * numDeleters - number of threads that will be deleting from the priority queue
  * numDelete - number of times each thread will try to delete
- * There are 2 test methods, one for each implementation
+ * There are 2 test methods, one for each implementation, plus a test for the publisher over the lock free queue
+ * and a test for the sharded queue server (ordering, large frames, backpressure and the error path)
  * The end of each test method will print out the resulting structure that was used followed by a boolean variable saying if the state of the structure is correct
  */
 public class TestMain {
@@ -20,6 +31,8 @@ public class TestMain {
 
         //fineGrainedTest(numInserters, numInsert, numDeleters, numDelete);
         lockFreeTest(numInserters, numInsert, numDeleters, numDelete);
+        //publisherTest(numInserters, numInsert, numDeleters);
+        //serverTest(4, 8);
     }
 
     private static void fineGrainedTest(int numInserters, int numInsert, int numDeleters, int numDelete){
@@ -106,4 +119,156 @@ public class TestMain {
         System.out.println("VALID_STATE: " + lockFreePriorityQueue.verify());
     }
 
+    // Each subscriber pulls 10 values at a time from the publisher
+    // Once the publisher is closed every inserted value should have been delivered to exactly one subscriber
+    private static void publisherTest(int numInserters, int numInsert, int numSubscribers){
+        LockFreePriorityQueue lockFreePriorityQueue = new LockFreePriorityQueue();
+        ExecutorService subscribers = Executors.newFixedThreadPool(numSubscribers);
+        PriorityQueuePublisher publisher = new PriorityQueuePublisher(lockFreePriorityQueue, subscribers);
+        Random r = new Random();
+        ExecutorService inserters = Executors.newFixedThreadPool(numInserters);
+        CountDownLatch completed = new CountDownLatch(numSubscribers);
+        AtomicInteger inserted = new AtomicInteger(), delivered = new AtomicInteger();
+
+        for (int i = 0; i < numSubscribers; i++) {
+            int id = i;
+            publisher.subscribe(new Flow.Subscriber<Integer>() {
+                Flow.Subscription subscription;
+                int received = 0;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(10);
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    delivered.incrementAndGet();
+                    if(++received % 10 == 0) subscription.request(10);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    throwable.printStackTrace();
+                    completed.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    System.out.println("SUBSCRIBER " + id + " RECEIVED: " + received);
+                    completed.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < numInserters; i++) {
+            inserters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < numInsert; i++){
+                        int num = r.nextInt(10000);
+                        if(publisher.insert(num, num)) inserted.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        try{
+            inserters.shutdown();
+            inserters.awaitTermination(10, TimeUnit.SECONDS);
+            System.out.println("MONITOR SCAN: " + lockFreePriorityQueue.stream().count() + " values left");
+            publisher.close();
+            completed.await(10, TimeUnit.SECONDS);
+            subscribers.shutdown();
+        }catch (InterruptedException e){}
+
+        System.out.println("ALL_DELIVERED: " + (inserted.get() == delivered.get()));
+        System.out.println("EMPTY: " + lockFreePriorityQueue.isEmpty());
+        System.out.println("VALID_STATE: " + lockFreePriorityQueue.verify());
+    }
+
+    // A single client fills the server with numBatches MAX_BATCH inserts (each frame is far over the 64 KiB read buffer),
+    // then pipelines as many MAX_BATCH deleteMins without reading - the server has to stop once MAX_PENDING_OUTPUT is pending
+    // Reading the responses afterwards has to return every key, in order across batches since nothing else is deleting
+    private static void serverTest(int numShards, int numBatches){
+        ShardedQueueServer server;
+        try{
+            server = new ShardedQueueServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), numShards);
+        }catch (IOException e){
+            e.printStackTrace();
+            return;
+        }
+        Thread serverThread = new Thread(server, "queue-server");
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+        try(ShardedQueueClient client = new ShardedQueueClient(address); ShardedQueueClient monitor = new ShardedQueueClient(address)){
+            int batch = QueueProtocol.MAX_BATCH;
+            int[] keys = new int[batch], values = new int[batch];
+            long inserted = 0;
+            for(int i = 0; i < numBatches; i++){
+                for(int j = 0; j < batch; j++){
+                    keys[j] = i * batch + j;
+                    values[j] = -keys[j];
+                }
+                inserted += client.insertBatch(keys, values);
+            }
+            System.out.println("LARGE_FRAMES: " + (inserted == (long) numBatches * batch));
+
+            for(int i = 0; i < numBatches; i++) client.sendDeleteMin(batch);
+            client.flush();
+
+            // Wait until the server stops removing, then it must not have drained everything
+            Map.Entry<Integer, Integer> head = monitor.peek(), previous;
+            do{
+                previous = head;
+                Thread.sleep(500);
+                head = monitor.peek();
+            }while(head != null && !head.equals(previous));
+            System.out.println("BACKPRESSURE: " + (head != null));
+
+            long removed = 0; int last = Integer.MIN_VALUE;
+            boolean ordered = true, pairs = true;
+            for(int i = 0; i < numBatches; i++){
+                for(Map.Entry<Integer, Integer> entry : client.readDeleteMin()){
+                    if(entry.getKey() <= last) ordered = false;
+                    if(entry.getValue() != -entry.getKey()) pairs = false;
+                    last = entry.getKey();
+                    removed++;
+                }
+            }
+            System.out.println("IN_ORDER: " + ordered);
+            System.out.println("ALL_REMOVED: " + (removed == inserted && pairs && monitor.peek() == null));
+        }catch (IOException | InterruptedException e){
+            e.printStackTrace();
+        }
+
+        // Unknown opcode and an oversized length prefix both get an ERROR frame, then the connection is closed
+        System.out.println("ERROR_OPCODE: " + rejected(address, 1, (byte) 99));
+        System.out.println("ERROR_LENGTH: " + rejected(address, 0x40000000, QueueProtocol.PEEK));
+
+        server.close();
+        try{
+            serverThread.join();
+        }catch (InterruptedException e){}
+        System.out.println("VALID_STATE: " + server.verify());
+    }
+
+    // Send a frame header by hand, true if the server answers with ERROR and closes the connection
+    private static boolean rejected(InetSocketAddress address, int length, byte op){
+        try(Socket socket = new Socket()){
+            socket.connect(address);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(length);
+            out.writeByte(op);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            return in.readInt() == 1 && in.readByte() == QueueProtocol.ERROR && in.read() == -1;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
 }